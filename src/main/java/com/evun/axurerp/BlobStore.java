@@ -0,0 +1,178 @@
+package com.evun.axurerp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * 服务端按内容(SHA-256)寻址的文件存储
+ * 功能:
+ * 上传的文件在存储中只保存一份, 各个目标目录中的文件都是指向存储文件的硬链接,
+ * 客户端也可以跳过服务端已经存在的文件内容
+ * 注意: 同一份内容被多个目录共享, 不能直接修改已发布目录中的文件;
+ * 存储目录位于服务器工作目录下, web服务器需要禁止访问该目录
+ */
+public class BlobStore {
+  private static final Logger log = LoggerFactory.getLogger(BlobStore.class);
+
+  private static final Pattern DIGEST_PATTERN = Pattern.compile("[0-9a-f]{64}");
+  //可执行文件单独存储, 因为硬链接共享文件权限
+  private static final String EXECUTABLE_SUFFIX = ".x";
+
+  //存储根目录
+  private final File storeDir;
+
+  public BlobStore(File storeDir) {
+    this.storeDir = storeDir;
+  }
+
+  /**
+   * 存储中是否已有指定内容的文件
+   *
+   * @param digest     文件内容的SHA-256摘要
+   * @param executable 文件是否可执行
+   * @return
+   */
+  public boolean contains(String digest, boolean executable) {
+    File blob = blobFile(digest, executable);
+    return blob != null && blob.isFile() && blob.length() > 0;
+  }
+
+  /**
+   * 在指定位置创建指向存储文件的硬链接, 无法创建硬链接时(例如硬链接数达到上限)复制存储文件
+   *
+   * @param digest     文件内容的SHA-256摘要
+   * @param executable 文件是否可执行
+   * @param target     需要创建的文件
+   * @return 存储中没有该文件或者创建和复制都失败时返回false
+   */
+  public boolean link(String digest, boolean executable, File target) {
+    File blob = blobFile(digest, executable);
+    if (blob == null || !blob.isFile()) {
+      return false;
+    }
+    try {
+      replaceWithLink(target.toPath(), blob.toPath());
+      return true;
+    } catch (IOException e) {
+      log.info("创建硬链接失败: {} -> {}, 改为复制文件, 原因: {}",
+          target.getAbsolutePath(), blob.getAbsolutePath(), e.toString());
+    }
+    try {
+      Files.copy(blob.toPath(), target.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+      return true;
+    } catch (IOException e) {
+      log.error("复制存储文件失败: {} -> {}", blob.getAbsolutePath(), target.getAbsolutePath(), e);
+      return false;
+    }
+  }
+
+  /**
+   * 将已写入完成的文件放入存储: 存储中没有该内容时, 存储文件直接链接到该文件;
+   * 已有该内容时, 该文件被替换为指向存储文件的硬链接.
+   * 空文件不放入存储, 否则所有空文件会共享同一个存储文件
+   *
+   * @param file       已写入完成的文件, 其内容的摘要必须为digest
+   * @param digest     文件内容的SHA-256摘要
+   * @param executable 文件是否可执行
+   */
+  public void ingest(File file, String digest, boolean executable) {
+    File blob = blobFile(digest, executable);
+    if (blob == null || file.length() == 0) {
+      return;
+    }
+    try {
+      File parentFile = blob.getParentFile();
+      if (!parentFile.isDirectory() && !parentFile.mkdirs()) {
+        log.error("创建存储目录失败: {}", parentFile.getAbsolutePath());
+        return;
+      }
+      try {
+        Files.createLink(blob.toPath(), file.toPath());
+      } catch (FileAlreadyExistsException e) {
+        //存储中已有相同内容, 使用存储中的文件
+        replaceWithLink(file.toPath(), blob.toPath());
+      }
+    } catch (IOException e) {
+      //存储失败不影响文件本身
+      log.info("文件放入存储失败: {}", file.getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * 将文件夹中的所有文件放入存储(需要重新读取文件计算摘要)
+   *
+   * @param dir
+   */
+  public void ingestTree(File dir) throws IOException {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      if (child.isDirectory()) {
+        ingestTree(child);
+      } else if (child.isFile()) {
+        ingest(child, XioUtil.sha256Hex(child), child.canExecute());
+      }
+    }
+  }
+
+  /**
+   * 删除不再被任何目录引用的存储文件(硬链接数为1), 只在支持unix文件属性的系统上生效
+   */
+  public void gc() {
+    File[] groups = storeDir.listFiles();
+    if (groups == null) {
+      return;
+    }
+    int deleted = 0;
+    try {
+      for (File group : groups) {
+        File[] blobs = group.listFiles();
+        if (blobs == null) {
+          continue;
+        }
+        for (File blob : blobs) {
+          Number links = (Number) Files.getAttribute(blob.toPath(), "unix:nlink");
+          if (links.intValue() <= 1 && blob.delete()) {
+            deleted++;
+          }
+        }
+      }
+    } catch (UnsupportedOperationException e) {
+      log.info("当前系统不支持统计硬链接数, 跳过清理存储");
+    } catch (IOException e) {
+      log.error("清理存储失败: {}", storeDir.getAbsolutePath(), e);
+    }
+    log.info("清理存储完成, 删除了 {} 个不再使用的文件", deleted);
+  }
+
+  private File blobFile(String digest, boolean executable) {
+    if (digest == null || !DIGEST_PATTERN.matcher(digest).matches()) {
+      return null;
+    }
+    return new File(new File(storeDir, digest.substring(0, 2)),
+        executable ? digest + EXECUTABLE_SUFFIX : digest);
+  }
+
+  private static void replaceWithLink(Path target, Path blob) throws IOException {
+    //先创建临时链接再替换, 保证目标文件始终完整
+    Path tempLink = target.resolveSibling(target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+    Files.createLink(tempLink, blob);
+    try {
+      Files.move(tempLink, target, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tempLink);
+    }
+  }
+}
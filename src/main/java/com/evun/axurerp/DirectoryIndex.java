@@ -0,0 +1,287 @@
+package com.evun.axurerp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 上传文件夹的本地索引: 记录每个文件的路径, 大小, 修改时间, 是否可执行和SHA-256摘要
+ * 功能:
+ * 扫描时只重新计算大小或修改时间发生变化的文件的摘要, 用于快速判断文件夹自上次上传后是否有变化
+ */
+public class DirectoryIndex {
+  private static final Logger log = LoggerFactory.getLogger(DirectoryIndex.class);
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  //v2增加了是否可执行, 旧版本的索引文件无法识别, 会重新扫描
+  private static final String HEADER = "#netty-fileupload-index v2";
+  private static final String SEPARATOR = "\t";
+  //文件夹在索引中的大小
+  private static final long DIRECTORY_SIZE = -1;
+  //修改时间与扫描时间过于接近的文件, 下次扫描时不信任其修改时间(扫描后同一时间粒度内可能再次被修改)
+  private static final long RACY_MILLIS = 2000;
+
+  //扫描开始时间
+  private final long scanTimeMillis;
+  //相对路径(以/分隔) -> 索引记录, 按遍历顺序排列
+  private final Map<String, Entry> entries;
+
+  private DirectoryIndex(long scanTimeMillis, Map<String, Entry> entries) {
+    this.scanTimeMillis = scanTimeMillis;
+    this.entries = entries;
+  }
+
+  /**
+   * 读取索引文件
+   *
+   * @param indexFile
+   * @return 索引文件不存在或者无法识别时返回null
+   */
+  public static DirectoryIndex load(File indexFile) {
+    if (!indexFile.isFile()) {
+      return null;
+    }
+    BufferedReader reader = null;
+    try {
+      reader = Files.newBufferedReader(indexFile.toPath(), UTF_8);
+      if (!HEADER.equals(reader.readLine())) {
+        log.info("无法识别的索引文件: {}, 将重新扫描", indexFile.getAbsolutePath());
+        return null;
+      }
+      long scanTimeMillis = Long.parseLong(reader.readLine());
+      Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+      for (String line; (line = reader.readLine()) != null; ) {
+        String[] fields = line.split(SEPARATOR, 5);
+        Entry entry = new Entry(fields[4], Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+            "1".equals(fields[2]), fields[3].isEmpty() ? null : fields[3]);
+        entries.put(entry.path, entry);
+      }
+      return new DirectoryIndex(scanTimeMillis, entries);
+    } catch (Exception e) {
+      log.info("读取索引文件: {} 失败, 将重新扫描", indexFile.getAbsolutePath(), e);
+      return null;
+    } finally {
+      XioUtil.closeQuietly(reader);
+    }
+  }
+
+  /**
+   * 扫描文件夹, 大小和修改时间与上次索引一致的文件直接使用上次的摘要, 其余文件并行计算摘要
+   *
+   * @param dir      需要扫描的文件夹
+   * @param previous 上次的索引, 可以为null
+   * @return 新的索引
+   */
+  public static DirectoryIndex scan(File dir, final DirectoryIndex previous) throws IOException {
+    long start = System.currentTimeMillis();
+    final Path root = dir.getCanonicalFile().toPath();
+    final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    final Map<String, Future<String>> digests = new LinkedHashMap<String, Future<String>>();
+    final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    try {
+      Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) {
+              if (!path.equals(root)) {
+                String name = relativeName(root, path);
+                entries.put(name, new Entry(name, DIRECTORY_SIZE, 0, false, null));
+              }
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path path, BasicFileAttributes attrs) {
+              //跟随符号链接时仍然得到符号链接本身, 说明链接已失效
+              if (attrs.isSymbolicLink()) {
+                log.info("跳过失效的符号链接: {}", path);
+                return FileVisitResult.CONTINUE;
+              }
+              String name = relativeName(root, path);
+              long size = attrs.size();
+              long lastModified = attrs.lastModifiedTime().toMillis();
+              boolean executable = Files.isExecutable(path);
+              Entry old = previous != null ? previous.entries.get(name) : null;
+              if (old != null && old.size == size && old.lastModified == lastModified
+                  && old.digest != null && lastModified < previous.scanTimeMillis - RACY_MILLIS) {
+                //只修改权限不影响文件内容, 摘要仍然有效
+                entries.put(name, new Entry(name, size, lastModified, executable, old.digest));
+              } else {
+                entries.put(name, new Entry(name, size, lastModified, executable, null));
+                digests.put(name, executor.submit(new Callable<String>() {
+                  public String call() throws Exception {
+                    try {
+                      return XioUtil.sha256Hex(path.toFile());
+                    } catch (IOException e) {
+                      //无法读取的文件不记录摘要, 下次扫描时会重新计算
+                      log.info("计算文件摘要失败: {}, 原因: {}", path, e.toString());
+                      return null;
+                    }
+                  }
+                }));
+              }
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException e) {
+              //无法访问的文件或文件夹不计入索引, 不影响上传
+              log.info("跳过无法访问的文件: {}, 原因: {}", path, e.toString());
+              return FileVisitResult.CONTINUE;
+            }
+          });
+      for (Map.Entry<String, Future<String>> digest : digests.entrySet()) {
+        Entry entry = entries.get(digest.getKey());
+        entries.put(entry.path, new Entry(entry.path, entry.size, entry.lastModified,
+            entry.executable, digest.getValue().get()));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    log.debug("扫描文件夹: {} 完成, 共 {} 条记录, 重新计算摘要 {} 个, 耗时: {} ms",
+        root, entries.size(), digests.size(), System.currentTimeMillis() - start);
+    return new DirectoryIndex(start, entries);
+  }
+
+  /**
+   * 保存索引文件(先写入临时文件再替换, 保证索引文件始终完整)
+   *
+   * @param indexFile
+   */
+  public void save(File indexFile) throws IOException {
+    File parentFile = indexFile.getAbsoluteFile().getParentFile();
+    if (!parentFile.isDirectory() && !parentFile.mkdirs()) {
+      throw new IOException("无法创建索引目录: " + parentFile.getAbsolutePath());
+    }
+    File tempFile = new File(parentFile, indexFile.getName() + ".tmp");
+    BufferedWriter writer = null;
+    try {
+      writer = Files.newBufferedWriter(tempFile.toPath(), UTF_8);
+      writer.write(HEADER);
+      writer.newLine();
+      writer.write(String.valueOf(scanTimeMillis));
+      writer.newLine();
+      for (Entry entry : entries.values()) {
+        writer.write(entry.size + SEPARATOR + entry.lastModified + SEPARATOR
+            + (entry.executable ? "1" : "0") + SEPARATOR
+            + (entry.digest != null ? entry.digest : "") + SEPARATOR + entry.path);
+        writer.newLine();
+      }
+    } finally {
+      XioUtil.closeQuietly(writer);
+    }
+    Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * 相对于上次索引新增或者内容发生变化的文件和文件夹
+   *
+   * @param previous 上次的索引, 为null时返回所有记录
+   * @return 相对路径列表
+   */
+  public List<String> changedPaths(DirectoryIndex previous) {
+    List<String> changed = new ArrayList<String>();
+    for (Entry entry : entries.values()) {
+      Entry old = previous != null ? previous.entries.get(entry.path) : null;
+      //没有摘要的文件无法确认是否变化, 视为已变化; 可执行权限变化时服务端需要重新设置权限, 同样视为已变化
+      if (old == null || old.size != entry.size || old.executable != entry.executable
+          || (entry.size != DIRECTORY_SIZE
+          && (entry.digest == null || !entry.digest.equals(old.digest)))) {
+        changed.add(entry.path);
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * 相对于上次索引被删除的文件和文件夹
+   *
+   * @param previous 上次的索引, 为null时返回空列表
+   * @return 相对路径列表
+   */
+  public List<String> removedPaths(DirectoryIndex previous) {
+    List<String> removed = new ArrayList<String>();
+    if (previous != null) {
+      for (String path : previous.entries.keySet()) {
+        if (!entries.containsKey(path)) {
+          removed.add(path);
+        }
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * 获取文件的SHA-256摘要
+   *
+   * @param path 相对路径(以/分隔)
+   * @return 索引中没有该文件时返回null
+   */
+  public String getDigest(String path) {
+    Entry entry = entries.get(path);
+    return entry != null ? entry.digest : null;
+  }
+
+  /**
+   * 获取文件夹对应的索引文件, 上传到不同服务器或目录时使用不同的索引
+   *
+   * @param indexDir  索引文件所在的目录
+   * @param uploadDir 需要上传的文件夹
+   * @param target    上传目标, 例如: host:port/dirname
+   * @return
+   */
+  public static File indexFile(File indexDir, File uploadDir, String target) throws IOException {
+    String key = uploadDir.getCanonicalPath() + "|" + target;
+    return new File(indexDir, XioUtil.toHex(
+        XioUtil.newMessageDigest("SHA-256").digest(key.getBytes(UTF_8))) + ".idx");
+  }
+
+  private static String relativeName(Path root, Path path) {
+    return root.relativize(path).toString().replace(File.separatorChar, '/');
+  }
+
+  private static class Entry {
+    private final String path;
+    //文件大小, 文件夹为-1
+    private final long size;
+    private final long lastModified;
+    //文件是否可执行, 文件夹为false
+    private final boolean executable;
+    private final String digest;
+
+    private Entry(String path, long size, long lastModified, boolean executable, String digest) {
+      this.path = path;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.executable = executable;
+      this.digest = digest;
+    }
+  }
+}
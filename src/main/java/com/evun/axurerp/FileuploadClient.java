@@ -4,6 +4,9 @@ import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.compression.SnappyFrameEncoder;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.compression.ZlibWrapper;
 import io.netty.handler.codec.serialization.ClassResolvers;
 import io.netty.handler.codec.serialization.ObjectDecoder;
 import io.netty.handler.codec.serialization.ObjectEncoder;
@@ -19,6 +22,11 @@ import java.io.InputStream;
 import java.net.ConnectException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -40,8 +48,22 @@ public class FileuploadClient {
   private static final String PARAM_NAME_LOCALDIRPATH = "netty.client.localdirpath";
   //在上传成功后,是否删除本地文件夹,默认为是, 如果想要不删除, 则需要设置如下: -Dnetty.client.delete.localdir=false
   private static final String PARAM_NAME_DELETED_LOCALDIR = "netty.client.delete.localdir";
+  //是否使用不压缩(raw)模式上传, 适用于大量小文件的文件夹, 默认为否, 开启: -Dnetty.client.raw=true
+  private static final String PARAM_NAME_RAW = "netty.client.raw";
+  //传输报文的压缩方式, 可选值: none, zlib, snappy, 默认为none, 例如: -Dnetty.client.compression=snappy
+  private static final String PARAM_NAME_COMPRESSION = "netty.client.compression";
+  //raw模式下是否跳过服务端已有的文件内容(需要服务端开启 netty.server.dedup), 默认为否, 开启: -Dnetty.client.dedup=true
+  private static final String PARAM_NAME_DEDUP = "netty.client.dedup";
+  //是否使用本地索引检测文件夹的变化, 没有变化时跳过上传, 默认为否, 开启: -Dnetty.client.index=true
+  private static final String PARAM_NAME_INDEX = "netty.client.index";
+  //本地索引文件保存的目录, 默认为用户目录下的.netty-fileupload, 例如: -Dnetty.client.index.dir=/home/admin/.index
+  private static final String PARAM_NAME_INDEX_DIR = "netty.client.index.dir";
+  private static final String COMPRESSION_ZLIB = "zlib";
+  private static final String COMPRESSION_SNAPPY = "snappy";
+  private static final String DEFAULT_COMPRESSION = "none";
   private static final String DEFAULT_DIRNAME = "home";
   private static final int DEFAULT_PORT = 9360;
+  private static final String DEFAULT_INDEX_DIRNAME = ".netty-fileupload";
 
   public static void main(String[] args) throws Exception {
     String localdirpath = System.getProperty(PARAM_NAME_LOCALDIRPATH);
@@ -56,7 +78,14 @@ public class FileuploadClient {
         new File(localdirpath),
         System.getProperty(PARAM_NAME_DIRNAME, DEFAULT_DIRNAME),
         System.currentTimeMillis(),
-        SystemPropertyUtil.getBoolean(PARAM_NAME_DELETED_LOCALDIR, true));
+        SystemPropertyUtil.getBoolean(PARAM_NAME_DELETED_LOCALDIR, true),
+        SystemPropertyUtil.getBoolean(PARAM_NAME_RAW, false),
+        System.getProperty(PARAM_NAME_COMPRESSION, DEFAULT_COMPRESSION),
+        SystemPropertyUtil.getBoolean(PARAM_NAME_DEDUP, false),
+        SystemPropertyUtil.getBoolean(PARAM_NAME_INDEX, false)
+            ? new File(System.getProperty(PARAM_NAME_INDEX_DIR,
+            new File(System.getProperty("user.home"), DEFAULT_INDEX_DIRNAME).getPath()))
+            : null);
   }
 
   /**
@@ -68,21 +97,58 @@ public class FileuploadClient {
    * @param targetDir 文件服务的相对路径
    * @param startTimeMillis 开始上传的时间
    * @param deleteLocalDir 文件上传成功后,是否删除本地文件
+   * @param rawMode 是否使用不压缩(raw)模式上传
+   * @param compression 传输报文的压缩方式: none(或null), zlib 或 snappy, 其他值会终止上传
+   * @param dedup raw模式下是否跳过服务端已有的文件内容
+   * @param indexDir 本地索引文件保存的目录, 为null时不使用索引
    * @throws Exception
    */
   public static void uploadDirectory(final String host, final int port,
                                      final File uploadDir, final String targetDir,
                                      final long startTimeMillis,
-                                     final boolean deleteLocalDir) throws Exception {
+                                     final boolean deleteLocalDir,
+                                     final boolean rawMode,
+                                     final String compression,
+                                     final boolean dedup,
+                                     final File indexDir) throws Exception {
     if (!uploadDir.exists()) {
       log.error("上传失败! 文件夹: {} 不存在!", uploadDir.getCanonicalPath());
       return;
     } else if (uploadDir.isFile()) {
       log.error("上传终止, 只支持上传文件夹, {} 为文件而不是文件夹!", uploadDir.getCanonicalPath());
       return;
+    } else if (compression != null && !DEFAULT_COMPRESSION.equalsIgnoreCase(compression)
+        && !COMPRESSION_ZLIB.equalsIgnoreCase(compression) && !COMPRESSION_SNAPPY.equalsIgnoreCase(compression)) {
+      log.error("上传终止, 不支持的压缩方式: {}, 可选值: none, zlib, snappy", compression);
+      return;
+    }
+    //根据本地索引判断文件夹自上次上传成功后是否有变化
+    final File indexFile = indexDir != null
+        ? DirectoryIndex.indexFile(indexDir, uploadDir, host + ":" + port + "/" + targetDir) : null;
+    final DirectoryIndex previous = indexFile != null ? DirectoryIndex.load(indexFile) : null;
+    final DirectoryIndex index = indexFile != null ? DirectoryIndex.scan(uploadDir, previous) : null;
+    if (index != null) {
+      List<String> changedPaths = index.changedPaths(previous);
+      List<String> removedPaths = index.removedPaths(previous);
+      if (previous != null && changedPaths.isEmpty() && removedPaths.isEmpty()) {
+        log.info("文件夹: {} 自上次上传后没有变化, 跳过上传", uploadDir.getCanonicalPath());
+        return;
+      }
+      log.info("文件夹: {} 自上次上传后新增或修改 {} 个, 删除 {} 个",
+          uploadDir.getCanonicalPath(), changedPaths.size(), removedPaths.size());
     }
     //上传成功标志位
     final AtomicBoolean uploadSuccess = new AtomicBoolean(false);
+    //连接服务器之前完成压缩和摘要计算, 避免连接建立后长时间不发送数据导致服务端判定空闲
+    final FileUploadClientHandler handler = new FileUploadClientHandler(
+        uploadDir, targetDir, startTimeMillis, rawMode, dedup, index, uploadSuccess);
+    try {
+      handler.prepare();
+    } catch (Exception e) {
+      log.error("准备上传文件夹: {} 失败, 文件上传终止!", uploadDir.getCanonicalPath(), e);
+      handler.deleteZipFile();
+      return;
+    }
     final EventLoopGroup group = new NioEventLoopGroup();
     new Bootstrap().group(group)
         .channel(NioSocketChannel.class)
@@ -90,11 +156,15 @@ public class FileuploadClient {
         .handler(new ChannelInitializer<Channel>() {
           @Override
           protected void initChannel(Channel ch) throws Exception {
+            if (COMPRESSION_ZLIB.equalsIgnoreCase(compression)) {
+              ch.pipeline().addLast(ZlibCodecFactory.newZlibEncoder(ZlibWrapper.ZLIB));
+            } else if (COMPRESSION_SNAPPY.equalsIgnoreCase(compression)) {
+              ch.pipeline().addLast(new SnappyFrameEncoder());
+            }
             ch.pipeline().addLast(new ObjectEncoder());
             ch.pipeline().addLast(new ObjectDecoder(
                 ClassResolvers.weakCachingConcurrentResolver(null)));
-            ch.pipeline().addLast(
-                new FileUploadClientHandler(uploadDir, targetDir, startTimeMillis, uploadSuccess));
+            ch.pipeline().addLast(handler);
           }
         }).connect(host, port)
         .addListener(new GenericFutureListener<Future<? super Void>>() {
@@ -113,6 +183,14 @@ public class FileuploadClient {
         }).channel().closeFuture()
         .addListener(new GenericFutureListener<Future<? super Void>>() {
           public void operationComplete(Future<? super Void> future) throws Exception {
+            handler.deleteZipFile();
+            if (uploadSuccess.get() && index != null) {
+              try {
+                index.save(indexFile);
+              } catch (IOException e) {
+                log.error("保存本地索引失败: {}", indexFile.getAbsolutePath(), e);
+              }
+            }
             if (uploadSuccess.get() && deleteLocalDir && !XioUtil.rm(uploadDir) && uploadDir.exists()) {
               log.info("删除本地上传文件夹失败: {}", uploadDir.getCanonicalPath());
             }
@@ -124,6 +202,12 @@ public class FileuploadClient {
   private static class FileUploadClientHandler
       extends ChannelInboundHandlerAdapter {
     private static final int BUFFER_SIZE = 1024 * 16;
+    //raw模式下每个报文的最大文件内容大小
+    private static final int FRAME_SIZE = 1024 * 1024;
+    //raw模式下每条文件记录(路径等)的估算开销, 避免大量空文件堆积在同一个报文中
+    private static final int ENTRY_OVERHEAD = 128;
+    //每个去重查询报文最多包含的文件数
+    private static final int QUERY_SIZE = 10000;
     //上传开始时间
     private final long startTimeMillis;
     //需要上传的本地文件夹
@@ -135,53 +219,112 @@ public class FileuploadClient {
     //当前文件实际总大小(一旦设置就不改变)
     private final AtomicLong totalLength;
     private final AtomicBoolean uploadSuccess;
-    //本地压缩后的临时文件名称
+    //是否使用不压缩(raw)模式上传
+    private final boolean rawMode;
+    //raw模式下是否跳过服务端已有的文件内容
+    private final boolean dedup;
+    //上传前扫描得到的本地索引, 未开启时为null
+    private final DirectoryIndex index;
+    //本地压缩后的临时文件名称(raw模式下为服务端临时目录名称)
     private String uploadFileName;
+    //本地压缩后的临时文件, raw模式下为null
+    private File zipFile;
+    //raw模式下需要上传的所有文件夹和文件
+    private List<TransferEntry> entries;
+    //raw模式下需要上传的所有文件夹和文件, 等待服务端回复去重查询结果时不为空
+    private List<TransferEntry> manifest;
+    //服务端已有内容的文件, 按文件(不包括文件夹)的序号记录
+    private BitSet knownEntries;
+    //还未收到回复的去重查询报文数
+    private int pendingQueries;
+    //raw模式下当前还未发送的文件记录
+    private List<TransferEntry> frameEntries = new ArrayList<TransferEntry>();
+    //raw模式下当前报文的估算大小
+    private int frameLength;
+    //已发送的所有文件内容的摘要, 随传输完成报文发送给服务端校验
+    private final MessageDigest streamDigest;
+    //是否已收到服务端的上传结束确认
+    private boolean finishReplied;
 
     private FileUploadClientHandler(
         File localDir, String targetDirname,
-        long startTimeMillis, AtomicBoolean uploadSuccess) {
+        long startTimeMillis, boolean rawMode, boolean dedup,
+        DirectoryIndex index, AtomicBoolean uploadSuccess) {
       this.localDir = localDir;
       this.targetDirname = targetDirname;
       this.startTimeMillis = startTimeMillis;
+      this.rawMode = rawMode;
+      this.dedup = dedup;
+      this.index = index;
       this.remainLength = new AtomicLong();
       this.totalLength = new AtomicLong();
       this.uploadSuccess = uploadSuccess;
+      this.streamDigest = XioUtil.newMessageDigest(TransferFile.DIGEST_ALGORITHM);
     }
 
-    public void channelActive(final ChannelHandlerContext ctx) {
-      File uploadFile = null;
-      InputStream fis = null;
-      try {
+    /**
+     * 连接服务器之前准备需要上传的内容: 压缩模式下生成压缩文件, raw模式下列出所有文件并计算摘要
+     */
+    private void prepare() throws IOException {
+      if (rawMode) {
+        this.uploadFileName = "netty" + UUID.randomUUID().toString().replace("-", "") + ".raw";
+        this.entries = new ArrayList<TransferEntry>();
+        listInternal(this.localDir, "", entries);
+        if (dedup) {
+          for (TransferEntry entry : entries) {
+            if (!entry.isDirectory()) {
+              //优先使用本地索引中的摘要, 避免重新读取文件
+              String digest = index != null ? index.getDigest(entry.getFilePath()) : null;
+              entry.setDigest(digest != null
+                  ? digest : XioUtil.sha256Hex(new File(localDir, entry.getFilePath())));
+            }
+          }
+        }
+      } else {
         //将要上传的文件夹压缩,生成一个临时文件
-        uploadFile = File.createTempFile("netty", ".zip");
-        final File tempUploadFile = uploadFile;
-        XzipUtil.zip(this.localDir, tempUploadFile);
+        this.zipFile = File.createTempFile("netty", ".zip");
+        XzipUtil.zip(this.localDir, zipFile);
 
         //初始化本地成员变量
-        this.remainLength.set(tempUploadFile.length());
-        this.totalLength.set(tempUploadFile.length());
-        this.uploadFileName = tempUploadFile.getName();
+        this.remainLength.set(zipFile.length());
+        this.totalLength.set(zipFile.length());
+        this.uploadFileName = zipFile.getName();
+      }
+    }
+
+    /**
+     * 删除本地压缩后的临时文件
+     */
+    private void deleteZipFile() throws IOException {
+      if (zipFile != null && !XioUtil.rm(zipFile) && zipFile.exists()) {
+        log.error("删除临时压缩文件: {} 失败!", zipFile.getCanonicalPath());
+      }
+    }
+
+    public void channelActive(final ChannelHandlerContext ctx) {
+      if (rawMode) {
+        uploadRaw(ctx);
+      } else {
+        uploadZip(ctx);
+      }
+    }
 
-        fis = Files.newInputStream(Paths.get(tempUploadFile.getCanonicalPath()));
+    private void uploadZip(final ChannelHandlerContext ctx) {
+      InputStream fis = null;
+      try {
+        fis = Files.newInputStream(Paths.get(zipFile.getCanonicalPath()));
         byte[] bytes;
         for (int read, position = 0;//read: 已读取的文件字节数, position: 当前总读取字节数
              (read = fis.read(bytes = new byte[BUFFER_SIZE], 0, BUFFER_SIZE)) != -1;
              position += read
             ) {
+          streamDigest.update(bytes, 0, read);
           ctx.writeAndFlush(newTransferFile(bytes, read, position))
               .addListener(newListener(ctx, read, uploadSuccess));
         }
       } catch (Exception e) {
         log.error(null, e);
       } finally {
-        if (uploadFile != null && !XioUtil.rm(uploadFile)) {
-          try {
-            log.error("删除临时压缩文件: {} 失败!", uploadFile.getCanonicalPath());
-          } catch (IOException e) {
-            log.error(null, e);
-          }
-        }
         XioUtil.closeQuietly(fis);
       }
     }
@@ -200,39 +343,277 @@ public class FileuploadClient {
           }
           //计算当前还需要传输的字节数
           if (remainLength.addAndGet(-currentWritten) == 0) {
-            TransferFile transferFinish = newTransferFinish();
-            //发送最后的文件传输完成报文
-            ctx.writeAndFlush(transferFinish)
-                .addListener(new GenericFutureListener<Future<? super Void>>() {
-                  public void operationComplete(Future<? super Void> future) throws Exception {
-                    if (future.isSuccess()) {
-                      //设置文件传输成功标志位
-                      uploadSuccess.set(true);
-                      long timePeriod = System.currentTimeMillis() - startTimeMillis;
-                      log.info("文件上传完成: {} (压缩大小: {} m), 耗时: {} s, 上传速度: {} m/s.",
-                          localDir.getCanonicalPath(),
-                          String.format("%.2f", ((double) totalLength.get()) / 1024 / 1024),
-                          String.format("%.2f", ((double) timePeriod) / 1000),
-                          String.format("%.2f", ((double) (totalLength.get() * 1000 / 1024 / 1024)) / timePeriod));
-                    }
-                    ctx.close();
-                  }
-                });
+            sendTransferFinish(ctx);
+          }
+        }
+      };
+
+    }
+
+    /**
+     * 发送最后的文件传输完成报文, 之后等待服务端校验并确认
+     */
+    private void sendTransferFinish(final ChannelHandlerContext ctx) {
+      ctx.writeAndFlush(newTransferFinish()).addListener(newFailureListener(ctx));
+    }
+
+    /**
+     * 处理服务端的上传结束确认, 只有服务端确认成功后才设置上传成功标志位
+     */
+    private void onTransferFinished(ChannelHandlerContext ctx, TransferReply reply) throws IOException {
+      finishReplied = true;
+      if (reply.isSuccess()) {
+        //设置文件传输成功标志位
+        uploadSuccess.set(true);
+        long timePeriod = System.currentTimeMillis() - startTimeMillis;
+        log.info("文件上传完成: {} ({}大小: {} m), 耗时: {} s, 上传速度: {} m/s.",
+            localDir.getCanonicalPath(),
+            rawMode ? "传输" : "压缩",
+            String.format("%.2f", ((double) totalLength.get()) / 1024 / 1024),
+            String.format("%.2f", ((double) timePeriod) / 1000),
+            String.format("%.2f", ((double) (totalLength.get() * 1000 / 1024 / 1024)) / timePeriod));
+      } else {
+        log.error("文件上传失败: {}, 服务端返回: {}", localDir.getCanonicalPath(), reply.getMessage());
+      }
+      ctx.close();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+      if (!finishReplied) {
+        log.error("文件上传失败: {}, 未收到服务端的确认!", localDir.getCanonicalPath());
+      }
+      super.channelInactive(ctx);
+    }
+
+    private TransferFile newTransferFinish() {
+      TransferFile transferFile = new TransferFile();
+      transferFile.setFilePath(uploadFileName);
+      transferFile.setFileName(localDir.getName());
+      transferFile.setDeleted(false);
+      transferFile.setRaw(rawMode);
+      //标记文件传输完成
+      transferFile.setTransferFinished(true);
+      transferFile.setTargetDirname(targetDirname);
+      transferFile.setDigest(XioUtil.toHex(streamDigest.digest()));
+      return transferFile;
+    }
+
+    /**
+     * 不压缩直接上传: 遍历文件夹, 将文件内容打包成若干个较大的报文发送,
+     * 服务端直接写入临时目录, 省去客户端和服务端的压缩包临时文件
+     */
+    private void uploadRaw(final ChannelHandlerContext ctx) {
+      try {
+        //只查询文件, 文件夹不需要去重
+        List<TransferEntry> files = new ArrayList<TransferEntry>();
+        if (dedup) {
+          for (TransferEntry entry : entries) {
+            if (!entry.isDirectory()) {
+              files.add(entry);
+            }
+          }
+        }
+        if (files.isEmpty()) {
+          sendEntries(ctx, entries, new BitSet());
+          return;
+        }
+        //先分批查询服务端已有的文件内容, 收到所有回复后再上传
+        this.manifest = entries;
+        this.knownEntries = new BitSet();
+        this.pendingQueries = (files.size() + QUERY_SIZE - 1) / QUERY_SIZE;
+        for (int offset = 0; offset < files.size(); offset += QUERY_SIZE) {
+          List<TransferEntry> queryFiles = files.subList(offset, Math.min(offset + QUERY_SIZE, files.size()));
+          ctx.writeAndFlush(newDigestQuery(queryFiles, offset)).addListener(newFailureListener(ctx));
+        }
+      } catch (Exception e) {
+        log.error(null, e);
+        ctx.close();
+      }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+      if (msg instanceof TransferReply && ((TransferReply) msg).isFinished()) {
+        onTransferFinished(ctx, (TransferReply) msg);
+      } else if (msg instanceof TransferReply && manifest != null) {
+        TransferReply reply = (TransferReply) msg;
+        BitSet replyEntries = reply.getKnownEntries();
+        if (replyEntries != null) {
+          for (int i = replyEntries.nextSetBit(0); i >= 0; i = replyEntries.nextSetBit(i + 1)) {
+            knownEntries.set(reply.getQueryOffset() + i);
           }
         }
+        if (--pendingQueries > 0) {
+          return;
+        }
+        List<TransferEntry> entries = this.manifest;
+        this.manifest = null;
+        try {
+          sendEntries(ctx, entries, knownEntries);
+        } catch (Exception e) {
+          log.error(null, e);
+          ctx.close();
+        }
+      }
+    }
+
+    /**
+     * 发送所有文件夹和文件, 服务端已有的文件只发送摘要
+     *
+     * @param knownEntries 服务端已有内容的文件, 按文件(不包括文件夹)的序号记录
+     */
+    private void sendEntries(ChannelHandlerContext ctx, List<TransferEntry> entries,
+                             BitSet knownEntries) throws IOException {
+      int linked = 0;
+      int fileIndex = 0;
+      for (TransferEntry entry : entries) {
+        if (entry.isDirectory()) {
+          addEntry(ctx, entry);
+        } else if (knownEntries.get(fileIndex++)) {
+          entry.setLinked(true);
+          addEntry(ctx, entry);
+          linked++;
+        } else {
+          packFile(ctx, entry);
+        }
+      }
+      if (linked > 0) {
+        log.info("服务端已有 {} 个文件, 跳过上传其内容", linked);
+      }
+      flushFrame(ctx);
+      sendTransferFinish(ctx);
+    }
 
-        private TransferFile newTransferFinish() throws InterruptedException {
-          TransferFile transferFile = new TransferFile();
-          transferFile.setFilePath(uploadFileName);
-          transferFile.setFileName(localDir.getName());
-          transferFile.setDeleted(false);
-          //标记文件传输完成
-          transferFile.setTransferFinished(true);
-          transferFile.setTargetDirname(targetDirname);
-          return transferFile;
+    /**
+     * 递归列出文件夹中的所有文件夹和文件
+     *
+     * @param sourceFile 源文件
+     * @param name       相对于上传文件夹的路径
+     * @param entries    列出的记录
+     */
+    private void listInternal(File sourceFile, String name, List<TransferEntry> entries) {
+      if (sourceFile.isFile()) {
+        entries.add(newTransferEntry(name, false, sourceFile.canExecute(), 0, null, 0));
+      } else {
+        //保留原来的文件结构, 包括空文件夹
+        if (!name.isEmpty()) {
+          entries.add(newTransferEntry(name, true, false, 0, new byte[0], 0));
+        }
+        File[] listFiles = sourceFile.listFiles();
+        if (listFiles != null) {
+          for (File file : listFiles) {
+            listInternal(file, name.isEmpty() ? file.getName() : name + "/" + file.getName(), entries);
+          }
+        }
+      }
+    }
+
+    private void packFile(ChannelHandlerContext ctx, TransferEntry fileEntry) throws IOException {
+      File file = new File(localDir, fileEntry.getFilePath());
+      InputStream fis = null;
+      try {
+        fis = Files.newInputStream(Paths.get(file.getCanonicalPath()));
+        long length = file.length();
+        long position = 0;
+        //小文件整个放入当前报文, 大文件按当前报文的剩余空间拆分成多条记录
+        do {
+          byte[] bytes = new byte[(int) Math.min(FRAME_SIZE - frameLength, length - position)];
+          int read = XioUtil.readFully(fis, bytes);
+          streamDigest.update(bytes, 0, read);
+          TransferEntry entry = newTransferEntry(
+              fileEntry.getFilePath(), false, fileEntry.isExecutable(), position, bytes, read);
+          if (position == 0) {
+            entry.setDigest(fileEntry.getDigest());
+          }
+          addEntry(ctx, entry);
+          position += read;
+          if (read < bytes.length) {
+            //文件在读取过程中变小了
+            break;
+          }
+        } while (position < length);
+      } finally {
+        XioUtil.closeQuietly(fis);
+      }
+    }
+
+    private void addEntry(ChannelHandlerContext ctx, TransferEntry entry) {
+      frameEntries.add(entry);
+      frameLength += entry.getByteLength() + ENTRY_OVERHEAD;
+      if (frameLength >= FRAME_SIZE) {
+        flushFrame(ctx);
+      }
+    }
+
+    private void flushFrame(final ChannelHandlerContext ctx) {
+      if (frameEntries.isEmpty()) {
+        return;
+      }
+      for (TransferEntry entry : frameEntries) {
+        totalLength.addAndGet(entry.getByteLength());
+      }
+      TransferFile transferFile = new TransferFile();
+      transferFile.setFilePath(uploadFileName);
+      transferFile.setTransferFinished(false);
+      transferFile.setDeleted(false);
+      transferFile.setRaw(true);
+      transferFile.setEntries(frameEntries);
+      ctx.writeAndFlush(transferFile).addListener(newFailureListener(ctx));
+      frameEntries = new ArrayList<TransferEntry>();
+      frameLength = 0;
+    }
+
+    /**
+     * 去重查询报文, 只包含查询需要的摘要和可执行标志, 不包含文件路径
+     *
+     * @param files  一部分需要查询的文件
+     * @param offset 第一个文件在所有文件中的序号
+     */
+    private TransferFile newDigestQuery(List<TransferEntry> files, int offset) {
+      List<TransferEntry> queryEntries = new ArrayList<TransferEntry>(files.size());
+      for (TransferEntry file : files) {
+        TransferEntry queryEntry = new TransferEntry();
+        queryEntry.setDigest(file.getDigest());
+        queryEntry.setExecutable(file.isExecutable());
+        queryEntries.add(queryEntry);
+      }
+      TransferFile transferFile = new TransferFile();
+      transferFile.setFilePath(uploadFileName);
+      transferFile.setTransferFinished(false);
+      transferFile.setDeleted(false);
+      transferFile.setRaw(true);
+      transferFile.setDigestQuery(true);
+      transferFile.setQueryOffset(offset);
+      transferFile.setEntries(queryEntries);
+      return transferFile;
+    }
+
+    private ChannelFutureListener newFailureListener(final ChannelHandlerContext ctx) {
+      return new ChannelFutureListener() {
+        public void operationComplete(ChannelFuture future) throws Exception {
+          if (!future.isSuccess()) {
+            log.info("文件上传失败, 即将退出!");
+            ctx.close();
+          }
         }
       };
+    }
 
+    private TransferEntry newTransferEntry(
+        String name, boolean directory, boolean executable,
+        long position, byte[] bytes, int read) {
+      TransferEntry entry = new TransferEntry();
+      entry.setFilePath(name);
+      entry.setDirectory(directory);
+      entry.setExecutable(executable);
+      entry.setStartPosition(position);
+      entry.setFileBytes(bytes);
+      entry.setByteLength(read);
+      if (bytes != null) {
+        entry.setChecksum(XioUtil.crc32(bytes, read));
+      }
+      return entry;
     }
 
     private TransferFile newTransferFile(
@@ -244,6 +625,7 @@ public class FileuploadClient {
       transferFile.setStartPosition(position);
       transferFile.setFileBytes(bytes);
       transferFile.setByteLength(read);
+      transferFile.setChecksum(XioUtil.crc32(bytes, read));
       return transferFile;
     }
 
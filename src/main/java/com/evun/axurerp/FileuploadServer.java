@@ -1,12 +1,22 @@
 package com.evun.axurerp;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.compression.SnappyFrameDecoder;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.compression.ZlibWrapper;
 import io.netty.handler.codec.serialization.ClassResolvers;
 import io.netty.handler.codec.serialization.ObjectDecoder;
 import io.netty.handler.codec.serialization.ObjectEncoder;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.handler.traffic.ChannelTrafficShapingHandler;
+import io.netty.handler.traffic.GlobalTrafficShapingHandler;
+import io.netty.util.AttributeKey;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
 import io.netty.util.internal.SystemPropertyUtil;
@@ -14,8 +24,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 文件上传服务器端
@@ -29,8 +47,33 @@ public class FileuploadServer {
   private static final String PARAM_NAME_PORT = "netty.server.port";
   //服务器的工作目录,所有上传的文件将放在这个目录下, 使用jvm启动参数指定,例如: -Dnnetty.server.home=/home/admin/book
   private static final String PARAM_NAME_HOME = "netty.server.home";
+  //是否开启按内容去重的文件存储, 开启后上传的文件都是存储文件的硬链接, 默认为否, 开启: -Dnetty.server.dedup=true
+  private static final String PARAM_NAME_DEDUP = "netty.server.dedup";
+  //去重存储在工作目录下的目录名, 该目录保留给服务端使用, 不能作为上传的目标目录
+  //注意: 工作目录由web服务器对外提供访问时, 需要禁止访问该目录, 例如nginx: location ~ /\.blobs/ { deny all; }
+  private static final String BLOB_DIRNAME = ".blobs";
+  //同时进行上传的最大连接数, 超出的连接排队等待, 使用jvm启动参数指定,例如: -Dnetty.server.max.sessions=16
+  private static final String PARAM_NAME_MAX_SESSIONS = "netty.server.max.sessions";
+  //排队等待上传的最大连接数, 超出的连接直接拒绝, 0为不限制, 例如: -Dnetty.server.max.queued=64
+  private static final String PARAM_NAME_MAX_QUEUED = "netty.server.max.queued";
+  //连接最多排队等待多少秒, 超时后断开, 0为不限制, 例如: -Dnetty.server.queue.seconds=600
+  private static final String PARAM_NAME_QUEUE_SECONDS = "netty.server.queue.seconds";
+  //上传连接在多少秒内没有收到数据则断开并删除已上传的文件, 0为不限制, 例如: -Dnetty.server.idle.seconds=300
+  private static final String PARAM_NAME_IDLE_SECONDS = "netty.server.idle.seconds";
+  //所有连接的总上传速度限制(字节/秒), 0为不限制, 例如: -Dnetty.server.read.limit=52428800
+  private static final String PARAM_NAME_READ_LIMIT = "netty.server.read.limit";
+  //每个连接的上传速度限制(字节/秒), 0为不限制, 例如: -Dnetty.server.channel.read.limit=10485760
+  private static final String PARAM_NAME_CHANNEL_READ_LIMIT = "netty.server.channel.read.limit";
+  //单个报文的最大字节数, 例如: -Dnetty.server.max.frame.size=67108864
+  private static final String PARAM_NAME_MAX_FRAME_SIZE = "netty.server.max.frame.size";
   //服务器默认端口号
   private static final int DEFAULT_PORT = 9360;
+  private static final int DEFAULT_MAX_SESSIONS = 16;
+  private static final int DEFAULT_MAX_QUEUED = 64;
+  private static final int DEFAULT_QUEUE_SECONDS = 600;
+  private static final int DEFAULT_IDLE_SECONDS = 300;
+  //需要容纳raw模式的报文(1m)和分批发送的去重查询报文
+  private static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 * 1024;
   //服务器默认工作目录,最好使用绝对路径
   private static final String DEFAULT_HOME = "netty-fileupload-home";
 
@@ -38,19 +81,45 @@ public class FileuploadServer {
     final int serverPort = SystemPropertyUtil.getInt(PARAM_NAME_PORT, DEFAULT_PORT);
     final File homeDir = new File(System.getProperty(PARAM_NAME_HOME, DEFAULT_HOME));
     final String workingDir = homeDir.getCanonicalPath();
+    final BlobStore blobStore = SystemPropertyUtil.getBoolean(PARAM_NAME_DEDUP, false)
+        ? new BlobStore(new File(homeDir, BLOB_DIRNAME)) : null;
+    if (blobStore != null) {
+      blobStore.gc();
+    }
+    final int idleSeconds = SystemPropertyUtil.getInt(PARAM_NAME_IDLE_SECONDS, DEFAULT_IDLE_SECONDS);
+    final long channelReadLimit = SystemPropertyUtil.getLong(PARAM_NAME_CHANNEL_READ_LIMIT, 0);
+    final int maxFrameSize = SystemPropertyUtil.getInt(PARAM_NAME_MAX_FRAME_SIZE, DEFAULT_MAX_FRAME_SIZE);
+    final SessionLimiter sessionLimiter = new SessionLimiter(
+        SystemPropertyUtil.getInt(PARAM_NAME_MAX_SESSIONS, DEFAULT_MAX_SESSIONS),
+        SystemPropertyUtil.getInt(PARAM_NAME_MAX_QUEUED, DEFAULT_MAX_QUEUED),
+        SystemPropertyUtil.getInt(PARAM_NAME_QUEUE_SECONDS, DEFAULT_QUEUE_SECONDS));
     final NioEventLoopGroup boss = new NioEventLoopGroup();
     final NioEventLoopGroup worker = new NioEventLoopGroup();
+    final long readLimit = SystemPropertyUtil.getLong(PARAM_NAME_READ_LIMIT, 0);
+    final GlobalTrafficShapingHandler globalTrafficShaping =
+        readLimit > 0 ? new GlobalTrafficShapingHandler(worker, 0, readLimit) : null;
     new ServerBootstrap()
         .group(boss, worker)
         .channel(NioServerSocketChannel.class)
         .option(ChannelOption.SO_BACKLOG, 1024)
         .childHandler(new ChannelInitializer<Channel>() {
           protected void initChannel(Channel channel) throws Exception {
+            if (globalTrafficShaping != null) {
+              channel.pipeline().addLast(globalTrafficShaping);
+            }
+            if (channelReadLimit > 0) {
+              channel.pipeline().addLast(new ChannelTrafficShapingHandler(0, channelReadLimit));
+            }
+            if (idleSeconds > 0) {
+              channel.pipeline().addLast(new IdleStateHandler(idleSeconds, 0, 0, TimeUnit.SECONDS));
+            }
             channel.pipeline()
+                .addLast(sessionLimiter)
+                .addLast(new CompressionDetector())
                 .addLast(new ObjectEncoder())
-                .addLast(new ObjectDecoder(Integer.MAX_VALUE,
+                .addLast(new ObjectDecoder(maxFrameSize,
                     ClassResolvers.weakCachingConcurrentResolver(null)))
-                .addLast(new FileuploadHandler(homeDir));
+                .addLast(new FileuploadHandler(homeDir, blobStore));
           }
         })
         .bind(serverPort)
@@ -62,6 +131,9 @@ public class FileuploadServer {
         .channel().closeFuture()
         .addListener(new GenericFutureListener<Future<? super Void>>() {
           public void operationComplete(Future<? super Void> future) throws Exception {
+            if (globalTrafficShaping != null) {
+              globalTrafficShaping.release();
+            }
             boss.shutdownGracefully();
             worker.shutdownGracefully();
             log.info("文件服务器(端口号: {}, 工作目录: {}) 已关闭!", serverPort, workingDir);
@@ -75,55 +147,309 @@ public class FileuploadServer {
   public static class FileuploadHandler extends ChannelInboundHandlerAdapter {
     //文件服务器工作目录
     private final File homeDir;
+    //按内容去重的文件存储, 未开启时为null
+    private final BlobStore blobStore;
+    //raw模式下正在写入的需要放入存储的文件, 及其摘要信息
+    private File pendingFile;
+    private TransferEntry pendingEntry;
+    private MessageDigest pendingDigest;
+    //本次上传写入的压缩文件或临时目录, 上传失败时需要删除
+    private File uploadFile;
+    //已写入的所有文件内容的摘要, 传输完成时与客户端的摘要比较
+    private MessageDigest streamDigest;
+    //非raw模式下已写入的字节数, 用于校验文件块是否按顺序到达
+    private long receivedLength;
+    //上传是否已经失败, 失败后丢弃该连接后续的所有报文
+    private boolean failed;
 
     public FileuploadHandler(File homeDir) {
+      this(homeDir, null);
+    }
+
+    public FileuploadHandler(File homeDir, BlobStore blobStore) {
       this.homeDir = homeDir;
+      this.blobStore = blobStore;
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+      //已经通知客户端失败, 同一次读取中已解码的后续报文不能再开始新的上传
+      if (failed) {
+        return;
+      }
       if (msg != null && msg instanceof TransferFile) {
         TransferFile transferFile = (TransferFile) msg;
         File file = new File(homeDir, transferFile.getFilePath());
+        if (transferFile.isDigestQuery()) {
+          //返回存储中已有的文件内容
+          ctx.writeAndFlush(newDigestReply(transferFile));
+          return;
+        }
+        if (uploadFile == null) {
+          if (isReservedPath(transferFile.getFilePath())) {
+            failTransfer(ctx, "不允许使用的上传路径: " + transferFile.getFilePath());
+            return;
+          }
+          uploadFile = file;
+          streamDigest = XioUtil.newMessageDigest(TransferFile.DIGEST_ALGORITHM);
+        } else if (!uploadFile.equals(file)) {
+          failTransfer(ctx, "报文不属于当前上传: " + transferFile.getFilePath());
+          return;
+        }
         //文件传输完成后,客户端会将transferFinished设置为true
         if (!transferFile.isTransferFinished()) {
-          //将客户端上传的文件块写入指定文件
-          writeTranferFile(transferFile, file);
+          if (transferFile.isRaw()) {
+            //raw模式下直接将文件记录写入临时目录
+            if (!writeTransferEntries(transferFile, file)) {
+              failTransfer(ctx, "写入文件记录失败: " + transferFile.getFilePath());
+            }
+          } else if (!verifyTransferFile(transferFile)) {
+            failTransfer(ctx, "文件块校验失败: " + transferFile.getFilePath()
+                + ", 位置: " + transferFile.getStartPosition());
+          } else {
+            //将客户端上传的文件块写入指定文件
+            writeTranferFile(transferFile, file);
+          }
+          return;
+        }
+        if (isReservedPath(transferFile.getTargetDirname())) {
+          failTransfer(ctx, "不允许使用的目标目录: " + transferFile.getTargetDirname());
+          return;
+        }
+        if (transferFile.isRaw()) {
+          ingestPendingFile();
+        }
+        String digest = XioUtil.toHex(streamDigest.digest());
+        //没有摘要的传输完成报文同样视为校验失败
+        if (!digest.equals(transferFile.getDigest())) {
+          failTransfer(ctx, "上传内容摘要校验失败: " + transferFile.getFilePath());
+          return;
+        }
+        boolean success;
+        if (transferFile.isRaw()) {
+          //raw模式下临时目录即为最终的文件夹
+          if (!file.isDirectory() && !file.mkdirs()) {
+            log.error("创建临时目录失败: {}", file.getCanonicalPath());
+          }
+          success = moveDir(transferFile, file);
         } else {
           //将上传完成后的文件移入目标目录中
-          unzipMoveDir(transferFile, file);
+          success = unzipMoveDir(transferFile, file);
+        }
+        if (success) {
+          uploadFile = null;
+          ctx.writeAndFlush(newFinishReply(true, null));
+        } else {
+          failTransfer(ctx, "更新文件夹失败: " + transferFile.getTargetDirname());
         }
       }
     }
 
-    private void unzipMoveDir(TransferFile transferFile, File file) throws Exception {
-      //解压缩前先删除旧的目标文件夹(防止由于其存在导致解压缩失败)
-      File targetDir = new File(homeDir, transferFile.getFileName());
-      if (!XioUtil.rm(targetDir) && targetDir.exists()) {
-        log.error("解压缩文件: {} 失败, 原因是无法删除旧的目标文件夹: {} !",
-            file.getCanonicalPath(), targetDir.getCanonicalPath());
+    /**
+     * 路径是否为工作目录本身, 或者为去重存储目录及其子目录, 这些路径会被上传过程删除或覆盖, 不允许客户端使用
+     */
+    private boolean isReservedPath(String relativePath) throws IOException {
+      String path = new File(homeDir, relativePath != null ? relativePath : "").getCanonicalPath();
+      String storePath = new File(homeDir, BLOB_DIRNAME).getCanonicalPath();
+      return path.equals(homeDir.getCanonicalPath())
+          || path.equals(storePath) || path.startsWith(storePath + File.separator);
+    }
+
+    /**
+     * 校验文件块的CRC32及其位置, 同时计算整个上传内容的摘要
+     */
+    private boolean verifyTransferFile(TransferFile transferFile) {
+      if (transferFile.isDeleted()) {
+        return true;
+      }
+      if (transferFile.getStartPosition() != receivedLength
+          || XioUtil.crc32(transferFile.getFileBytes(), transferFile.getByteLength()) != transferFile.getChecksum()) {
+        return false;
+      }
+      receivedLength += transferFile.getByteLength();
+      streamDigest.update(transferFile.getFileBytes(), 0, transferFile.getByteLength());
+      return true;
+    }
+
+    /**
+     * 上传失败: 删除已写入的文件, 通知客户端后关闭连接
+     */
+    private void failTransfer(ChannelHandlerContext ctx, String message) {
+      if (failed) {
         return;
       }
+      failed = true;
+      //停止读取, 关闭连接前不再处理客户端的数据
+      ctx.channel().config().setAutoRead(false);
+      log.error("文件上传失败: {}", message);
+      if (uploadFile != null && !XioUtil.rm(uploadFile) && uploadFile.exists()) {
+        log.error("删除上传失败的文件失败: {}", uploadFile.getAbsolutePath());
+      }
+      uploadFile = null;
+      ctx.writeAndFlush(newFinishReply(false, message)).addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private static TransferReply newFinishReply(boolean success, String message) {
+      TransferReply reply = new TransferReply();
+      reply.setFinished(true);
+      reply.setSuccess(success);
+      reply.setMessage(message);
+      return reply;
+    }
+
+    private boolean unzipMoveDir(TransferFile transferFile, File file) throws Exception {
+      //每次上传解压到单独的临时目录, 压缩包中的文件只能位于 临时目录/文件夹名 下
+      File stagingDir = new File(homeDir, file.getName() + ".unzip");
+      try {
+        //解压缩前先删除旧的临时目录(防止由于其存在导致解压缩失败)
+        if (!XioUtil.rm(stagingDir) && stagingDir.exists()) {
+          log.error("解压缩文件: {} 失败, 原因是无法删除旧的临时目录: {} !",
+              file.getCanonicalPath(), stagingDir.getCanonicalPath());
+          return false;
+        }
+        File targetDir = new File(stagingDir, String.valueOf(transferFile.getFileName()));
+        if (!stagingDir.getCanonicalFile().equals(targetDir.getCanonicalFile().getParentFile())) {
+          log.error("解压缩文件: {} 失败, 非法的文件夹名称: {} !",
+              file.getCanonicalPath(), transferFile.getFileName());
+          return false;
+        }
+
+        XzipUtil.unzip(file, stagingDir);
+
+        //解压缩成功后,删除压缩文件
+        if (!file.delete()) {
+          log.error("删除已上传的压缩文件失败: {}", file.getCanonicalPath());
+        }
 
-      XzipUtil.unzip(file, homeDir);
+        //解压缩后只能得到这一个文件夹
+        String[] names = stagingDir.list();
+        if (!targetDir.isDirectory() || names == null || names.length != 1) {
+          log.error("解压缩文件: {} 后没有得到唯一的文件夹: {} !",
+              file.getCanonicalPath(), transferFile.getFileName());
+          return false;
+        }
+        if (blobStore != null) {
+          blobStore.ingestTree(targetDir);
+        }
+        return moveDir(transferFile, targetDir);
+      } finally {
+        if (!XioUtil.rm(stagingDir) && stagingDir.exists()) {
+          log.error("删除解压缩临时目录失败: {}", stagingDir.getCanonicalPath());
+        }
+      }
+    }
 
-      //解压缩成功后,删除压缩文件
-      if (!file.delete()) {
-        log.error("删除已上传的压缩文件失败: {}", file.getCanonicalPath());
+    /**
+     * 使用新的文件夹替换目标目录
+     */
+    private boolean moveDir(TransferFile transferFile, File targetDir) throws IOException {
+      File oldDir = new File(homeDir, transferFile.getTargetDirname());
+      if (!XioUtil.rm(oldDir) && oldDir.exists()) {
+        log.error("尝试更新目录失败: {}, 原因是旧的目录无法删除!", oldDir.getCanonicalPath());
+        return false;
       }
+      File parentDir = oldDir.getParentFile();
+      if (!parentDir.isDirectory() && !parentDir.mkdirs()) {
+        log.error("尝试更新目录失败: {}, 原因是无法创建父目录!", oldDir.getCanonicalPath());
+        return false;
+      }
+      if (targetDir.renameTo(oldDir)) {
+        log.info("成功更新文件夹: {}", oldDir.getCanonicalPath());
+        return true;
+      } else {
+        log.error("更新文件夹失败: {}", oldDir.getCanonicalPath());
+        return false;
+      }
+    }
 
-      //解压缩后得到的文件夹
-      if (targetDir.isDirectory()) {
-        File oldDir = new File(homeDir, transferFile.getTargetDirname());
-        if (!XioUtil.rm(oldDir) && !oldDir.getParentFile().mkdirs()) {
-          log.error("尝试更新目录失败: {}, 原因是旧的目录无法删除!", oldDir.getCanonicalPath());
+    private boolean writeTransferEntries(TransferFile transferFile, File stagingDir) throws IOException {
+      if (transferFile.getEntries() == null) {
+        return true;
+      }
+      for (TransferEntry entry : transferFile.getEntries()) {
+        File file = new File(stagingDir, entry.getFilePath());
+        if (entry.getStartPosition() == 0) {
+          //上一个文件已经写入完成
+          ingestPendingFile();
         }
-        if (targetDir.renameTo(oldDir)) {
-          log.info("成功更新文件夹: {}", oldDir.getCanonicalPath());
-        } else {
-          log.error("更新文件夹失败: {}", oldDir.getCanonicalPath());
+        if (entry.isDirectory()) {
+          if (!file.isDirectory() && !file.mkdirs()) {
+            log.info("fail to make dirs: {}!", file.getAbsoluteFile());
+          }
+          continue;
+        }
+        if (!makeParentDirIfNeccessary(file)) {
+          return false;
+        }
+        if (entry.isLinked()) {
+          //客户端没有发送文件内容, 直接链接存储中的文件
+          if (blobStore == null || !blobStore.link(entry.getDigest(), entry.isExecutable(), file)) {
+            log.error("文件: {} 的内容在存储中不存在!", file.getAbsoluteFile());
+            return false;
+          }
+          continue;
+        }
+        if (XioUtil.crc32(entry.getFileBytes(), entry.getByteLength()) != entry.getChecksum()) {
+          log.error("文件: {} 位置: {} 的内容校验失败!", file.getAbsoluteFile(), entry.getStartPosition());
+          return false;
+        }
+        streamDigest.update(entry.getFileBytes(), 0, entry.getByteLength());
+        if (blobStore != null && entry.getStartPosition() == 0) {
+          pendingFile = file;
+          pendingEntry = entry;
+          pendingDigest = XioUtil.newMessageDigest("SHA-256");
+        }
+        //同一个文件的记录按顺序到达, 第一条记录新建文件, 之后的记录追加写入
+        OutputStream fos = null;
+        try {
+          fos = new FileOutputStream(file, entry.getStartPosition() > 0);
+          fos.write(entry.getFileBytes(), 0, entry.getByteLength());
+        } finally {
+          XioUtil.closeQuietly(fos);
+        }
+        if (pendingDigest != null) {
+          pendingDigest.update(entry.getFileBytes(), 0, entry.getByteLength());
+        }
+        if (entry.isExecutable() && entry.getStartPosition() == 0 && !file.setExecutable(true)) {
+          log.info("fail to set executable: {}!", file.getAbsoluteFile());
+        }
+      }
+      return true;
+    }
+
+    /**
+     * 将写入完成的文件放入存储, 客户端发送了摘要时需要与之一致
+     */
+    private void ingestPendingFile() {
+      if (pendingFile == null) {
+        return;
+      }
+      String digest = XioUtil.toHex(pendingDigest.digest());
+      if (pendingEntry.getDigest() == null || digest.equals(pendingEntry.getDigest())) {
+        blobStore.ingest(pendingFile, digest, pendingEntry.isExecutable());
+      } else {
+        log.error("文件: {} 的摘要与客户端不一致, 不放入存储!", pendingFile.getAbsoluteFile());
+      }
+      pendingFile = null;
+      pendingEntry = null;
+      pendingDigest = null;
+    }
+
+    private TransferReply newDigestReply(TransferFile transferFile) {
+      BitSet knownEntries = new BitSet();
+      List<TransferEntry> entries = transferFile.getEntries();
+      if (blobStore != null && entries != null) {
+        for (int i = 0; i < entries.size(); i++) {
+          TransferEntry entry = entries.get(i);
+          if (!entry.isDirectory() && blobStore.contains(entry.getDigest(), entry.isExecutable())) {
+            knownEntries.set(i);
+          }
         }
       }
+      TransferReply reply = new TransferReply();
+      reply.setKnownEntries(knownEntries);
+      reply.setQueryOffset(transferFile.getQueryOffset());
+      return reply;
     }
 
     private void writeTranferFile(TransferFile transferFile, File file) throws IOException {
@@ -146,7 +472,31 @@ public class FileuploadServer {
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
       log.error(null, cause);
-      ctx.close();
+      failTransfer(ctx, String.valueOf(cause));
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+      if (evt instanceof IdleStateEvent) {
+        //长时间没有收到数据的上传, 释放其占用的文件和内存
+        failTransfer(ctx, "上传超时: " + ctx.channel().remoteAddress());
+      } else {
+        super.userEventTriggered(ctx, evt);
+      }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+      //连接在上传完成前断开, 删除已写入的文件
+      if (uploadFile != null) {
+        log.error("连接 {} 在上传完成前断开, 删除已上传的文件: {}",
+            ctx.channel().remoteAddress(), uploadFile.getAbsolutePath());
+        if (!XioUtil.rm(uploadFile) && uploadFile.exists()) {
+          log.error("删除上传失败的文件失败: {}", uploadFile.getAbsolutePath());
+        }
+        uploadFile = null;
+      }
+      super.channelInactive(ctx);
     }
 
     private boolean makeParentDirIfNeccessary(File file) {
@@ -168,4 +518,152 @@ public class FileuploadServer {
       return transferFile.isDeleted();
     }
   }
+
+  /**
+   * 根据客户端发送的第一个字节判断报文是否经过压缩, 并在pipeline中加入对应的解压缩处理器
+   * 未压缩的报文以4字节的长度开头, 第一个字节为0; zlib以0x78开头; snappy以0xff开头
+   */
+  public static class CompressionDetector extends ByteToMessageDecoder {
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+      if (in.readableBytes() < 1) {
+        return;
+      }
+      int magic = in.getUnsignedByte(in.readerIndex());
+      if (magic == 0x78) {
+        ctx.pipeline().addAfter(ctx.name(), null, ZlibCodecFactory.newZlibDecoder(ZlibWrapper.ZLIB));
+      } else if (magic == 0xff) {
+        ctx.pipeline().addAfter(ctx.name(), null, new SnappyFrameDecoder());
+      }
+      //移除自身后, 已读取的数据会交给后续的处理器
+      ctx.pipeline().remove(this);
+    }
+  }
+
+  /**
+   * 限制同时进行上传的连接数, 超出的连接暂停读取并排队, 有连接结束后按顺序放行;
+   * 排队已满的连接直接拒绝, 排队超时的连接被断开
+   */
+  @ChannelHandler.Sharable
+  public static class SessionLimiter extends ChannelInboundHandlerAdapter {
+    //连接是否已经占用了上传名额, 只有占用名额的连接结束时才释放名额
+    private static final AttributeKey<Boolean> SESSION_ACQUIRED =
+        AttributeKey.valueOf(SessionLimiter.class, "SESSION_ACQUIRED");
+    //acquireOrWait的结果: 占用名额, 排队, 排队已满被拒绝
+    private static final int ACQUIRED = 0;
+    private static final int QUEUED = 1;
+    private static final int REJECTED = 2;
+    //最大同时上传的连接数, 小于等于0时不限制
+    private final int maxSessions;
+    //最大排队的连接数, 小于等于0时不限制
+    private final int maxQueued;
+    //连接最多排队等待的秒数, 小于等于0时不限制
+    private final int queueSeconds;
+    //排队等待的连接
+    private final Queue<Channel> waitingChannels = new ConcurrentLinkedQueue<Channel>();
+    //正在上传的连接数
+    private int activeSessions;
+    //排队中的连接数
+    private int queuedSessions;
+
+    public SessionLimiter(int maxSessions) {
+      this(maxSessions, 0, 0);
+    }
+
+    public SessionLimiter(int maxSessions, int maxQueued, int queueSeconds) {
+      this.maxSessions = maxSessions;
+      this.maxQueued = maxQueued;
+      this.queueSeconds = queueSeconds;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+      final Channel channel = ctx.channel();
+      int admission = acquireOrWait(channel);
+      if (admission == REJECTED) {
+        reject(channel, "上传连接数和排队数都已达上限, 请稍后重试");
+      } else if (admission == QUEUED) {
+        log.info("上传连接数已达上限: {}, 连接 {} 排队等待中, 当前排队数: {}",
+            maxSessions, channel.remoteAddress(), queuedSessions);
+        if (queueSeconds > 0) {
+          ctx.executor().schedule(new Runnable() {
+            public void run() {
+              if (removeWaiting(channel)) {
+                reject(channel, "排队等待超过 " + queueSeconds + " 秒, 请稍后重试");
+              }
+            }
+          }, queueSeconds, TimeUnit.SECONDS);
+        }
+      }
+      super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+      release(ctx.channel());
+      super.channelInactive(ctx);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+      //排队中的连接没有数据是正常的, 不能当做空闲连接断开
+      if (evt instanceof IdleStateEvent && waitingChannels.contains(ctx.channel())) {
+        return;
+      }
+      super.userEventTriggered(ctx, evt);
+    }
+
+    /**
+     * 拒绝连接: 返回上传失败并断开
+     */
+    private void reject(Channel channel, String message) {
+      log.error("拒绝连接 {}: {}", channel.remoteAddress(), message);
+      //经过整个pipeline写出, 由ObjectEncoder编码
+      channel.writeAndFlush(FileuploadHandler.newFinishReply(false, message))
+          .addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private synchronized int acquireOrWait(Channel channel) {
+      if (maxSessions > 0 && activeSessions >= maxSessions) {
+        //暂停读取, 直到有其他连接结束
+        channel.config().setAutoRead(false);
+        if (maxQueued > 0 && queuedSessions >= maxQueued) {
+          return REJECTED;
+        }
+        waitingChannels.add(channel);
+        queuedSessions++;
+        return QUEUED;
+      }
+      activeSessions++;
+      channel.attr(SESSION_ACQUIRED).set(true);
+      return ACQUIRED;
+    }
+
+    private synchronized boolean removeWaiting(Channel channel) {
+      if (waitingChannels.remove(channel)) {
+        queuedSessions--;
+        return true;
+      }
+      return false;
+    }
+
+    private synchronized void release(Channel channel) {
+      removeWaiting(channel);
+      //排队中就已关闭的连接没有占用名额
+      if (!Boolean.TRUE.equals(channel.attr(SESSION_ACQUIRED).getAndSet(false))) {
+        return;
+      }
+      activeSessions--;
+      for (Channel waitingChannel; (waitingChannel = waitingChannels.poll()) != null; ) {
+        queuedSessions--;
+        if (waitingChannel.isActive()) {
+          activeSessions++;
+          waitingChannel.attr(SESSION_ACQUIRED).set(true);
+          log.info("连接 {} 开始上传", waitingChannel.remoteAddress());
+          waitingChannel.config().setAutoRead(true);
+          return;
+        }
+      }
+    }
+  }
 }
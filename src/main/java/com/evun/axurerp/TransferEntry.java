@@ -0,0 +1,102 @@
+package com.evun.axurerp;
+
+import java.io.Serializable;
+
+/**
+ * 不压缩(raw)传输模式下的一条文件记录
+ * 多条记录打包在同一个 {@link TransferFile} 报文中发送, 大文件会被拆分成多条连续的记录
+ */
+public class TransferEntry implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  //文件相对于上传文件夹的路径
+  private String filePath;
+  //是否为文件夹
+  private boolean directory;
+  //文件是否可执行
+  private boolean executable;
+  //本条记录在文件中的开始位置
+  private long startPosition;
+  //本条记录的有效字节长度
+  private int byteLength;
+  //本条记录的实际文件内容
+  private byte[] fileBytes;
+  //本条记录的文件内容的CRC32校验值
+  private long checksum;
+  //文件内容的SHA-256摘要, 只在开启去重时设置
+  private String digest;
+  //服务端已有该文件内容, 本条记录不包含文件内容, 服务端直接从存储中链接
+  private boolean linked;
+
+  public String getFilePath() {
+    return XioUtil.getSafePath(filePath);
+  }
+
+  public void setFilePath(String filePath) {
+    this.filePath = filePath;
+  }
+
+  public boolean isDirectory() {
+    return directory;
+  }
+
+  public void setDirectory(boolean directory) {
+    this.directory = directory;
+  }
+
+  public boolean isExecutable() {
+    return executable;
+  }
+
+  public void setExecutable(boolean executable) {
+    this.executable = executable;
+  }
+
+  public long getStartPosition() {
+    return startPosition;
+  }
+
+  public void setStartPosition(long startPosition) {
+    this.startPosition = startPosition;
+  }
+
+  public int getByteLength() {
+    return byteLength;
+  }
+
+  public void setByteLength(int byteLength) {
+    this.byteLength = byteLength;
+  }
+
+  public byte[] getFileBytes() {
+    return fileBytes;
+  }
+
+  public void setFileBytes(byte[] fileBytes) {
+    this.fileBytes = fileBytes;
+  }
+
+  public String getDigest() {
+    return digest;
+  }
+
+  public void setDigest(String digest) {
+    this.digest = digest;
+  }
+
+  public boolean isLinked() {
+    return linked;
+  }
+
+  public void setLinked(boolean linked) {
+    this.linked = linked;
+  }
+
+  public long getChecksum() {
+    return checksum;
+  }
+
+  public void setChecksum(long checksum) {
+    this.checksum = checksum;
+  }
+}
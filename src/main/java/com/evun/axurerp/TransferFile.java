@@ -1,6 +1,7 @@
 package com.evun.axurerp;
 
 import java.io.Serializable;
+import java.util.List;
 
 /**
  * Created by wq on 5/13/18.
@@ -8,6 +9,8 @@ import java.io.Serializable;
  */
 public class TransferFile implements Serializable {
   private static final long serialVersionUID = 1L;
+  //整个上传内容的摘要算法, 客户端和服务端在读写时逐块计算, 不需要再次读取文件
+  public static final String DIGEST_ALGORITHM = "MD5";
 
   //文件相对路径
   private String filePath;
@@ -19,10 +22,22 @@ public class TransferFile implements Serializable {
   private int byteLength;
   //本次文件传输的实际文件内容
   private byte[] fileBytes;
+  //本次传输的文件内容的CRC32校验值
+  private long checksum;
+  //传输完成报文中为整个上传内容的摘要, 服务端校验一致后才发布
+  private String digest;
   //是否删除该文件, 默认为否, 如果标记为删除,则服务端需要立即删除文件,并关闭本次连接
   private boolean deleted;
   //文件是否传输完成,为true时,代表客户端确认了文件已经全部写出
   private boolean transferFinished;
+  //是否为不压缩(raw)传输模式, 为true时文件内容放在entries中, 服务端直接写入临时目录而不需要解压
+  private boolean raw;
+  //raw模式下本次传输的文件记录
+  private List<TransferEntry> entries;
+  //是否为去重查询报文, 为true时entries中为一部分文件的摘要, 服务端返回已存在的文件
+  private boolean digestQuery;
+  //去重查询报文中第一条记录在所有文件(不包括文件夹)中的序号
+  private int queryOffset;
 
   public String getFileName() {
     return fileName;
@@ -87,4 +102,52 @@ public class TransferFile implements Serializable {
   public void setFileBytes(byte[] fileBytes) {
     this.fileBytes = fileBytes;
   }
+
+  public boolean isRaw() {
+    return raw;
+  }
+
+  public void setRaw(boolean raw) {
+    this.raw = raw;
+  }
+
+  public List<TransferEntry> getEntries() {
+    return entries;
+  }
+
+  public void setEntries(List<TransferEntry> entries) {
+    this.entries = entries;
+  }
+
+  public boolean isDigestQuery() {
+    return digestQuery;
+  }
+
+  public void setDigestQuery(boolean digestQuery) {
+    this.digestQuery = digestQuery;
+  }
+
+  public int getQueryOffset() {
+    return queryOffset;
+  }
+
+  public void setQueryOffset(int queryOffset) {
+    this.queryOffset = queryOffset;
+  }
+
+  public long getChecksum() {
+    return checksum;
+  }
+
+  public void setChecksum(long checksum) {
+    this.checksum = checksum;
+  }
+
+  public String getDigest() {
+    return digest;
+  }
+
+  public void setDigest(String digest) {
+    this.digest = digest;
+  }
 }
@@ -0,0 +1,62 @@
+package com.evun.axurerp;
+
+import java.io.Serializable;
+import java.util.BitSet;
+
+/**
+ * 服务端返回给客户端的报文
+ */
+public class TransferReply implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  //去重查询的结果, 第i位为true表示查询报文中第i条记录的文件内容服务端已存在
+  private BitSet knownEntries;
+  //对应的去重查询报文的queryOffset
+  private int queryOffset;
+  //是否为上传结束的确认报文, 客户端收到后关闭连接
+  private boolean finished;
+  //上传是否成功(服务端已校验并发布文件)
+  private boolean success;
+  //上传失败的原因
+  private String message;
+
+  public BitSet getKnownEntries() {
+    return knownEntries;
+  }
+
+  public void setKnownEntries(BitSet knownEntries) {
+    this.knownEntries = knownEntries;
+  }
+
+  public int getQueryOffset() {
+    return queryOffset;
+  }
+
+  public void setQueryOffset(int queryOffset) {
+    this.queryOffset = queryOffset;
+  }
+
+  public boolean isFinished() {
+    return finished;
+  }
+
+  public void setFinished(boolean finished) {
+    this.finished = finished;
+  }
+
+  public boolean isSuccess() {
+    return success;
+  }
+
+  public void setSuccess(boolean success) {
+    this.success = success;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  public void setMessage(String message) {
+    this.message = message;
+  }
+}
@@ -6,13 +6,21 @@ import org.slf4j.LoggerFactory;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
 
 /**
  * Created by wq on 5/16/18.
  */
 public abstract class XioUtil {
   private static final Logger log = LoggerFactory.getLogger(XioUtil.class);
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+  private static final int BUFFER_SIZE = 1024 * 64;
 
   /**
    * 关闭所有流, 记录所有异常
@@ -97,4 +105,80 @@ public abstract class XioUtil {
     }
     return null;
   }
+
+  /**
+   * 从流中读取数据直到填满字节数组或者流结束
+   * @param in
+   * @param bytes
+   * @return 实际读取的字节数
+   * @throws IOException
+   */
+  public static int readFully(InputStream in, byte[] bytes) throws IOException {
+    int position = 0;
+    for (int read; position < bytes.length
+        && (read = in.read(bytes, position, bytes.length - position)) != -1; ) {
+      position += read;
+    }
+    return position;
+  }
+
+  /**
+   * 获取指定算法的摘要实例
+   * @param algorithm 例如: SHA-256
+   * @return
+   */
+  public static MessageDigest newMessageDigest(String algorithm) {
+    try {
+      return MessageDigest.getInstance(algorithm);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * 计算文件的SHA-256摘要
+   * @param file
+   * @return 小写16进制字符串
+   * @throws IOException
+   */
+  public static String sha256Hex(File file) throws IOException {
+    MessageDigest digest = newMessageDigest("SHA-256");
+    InputStream in = null;
+    try {
+      in = Files.newInputStream(Paths.get(file.getCanonicalPath()));
+      byte[] bytes = new byte[BUFFER_SIZE];
+      for (int read; (read = in.read(bytes)) != -1; ) {
+        digest.update(bytes, 0, read);
+      }
+    } finally {
+      closeQuietly(in);
+    }
+    return toHex(digest.digest());
+  }
+
+  /**
+   * 将字节数组转换为小写16进制字符串
+   * @param bytes
+   * @return
+   */
+  public static String toHex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0f];
+      chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0f];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * 计算字节数组前length个字节的CRC32校验值
+   * @param bytes
+   * @param length
+   * @return
+   */
+  public static long crc32(byte[] bytes, int length) {
+    CRC32 crc32 = new CRC32();
+    crc32.update(bytes, 0, length);
+    return crc32.getValue();
+  }
 }
@@ -69,7 +69,7 @@ public abstract class XzipUtil {
    * 解压缩zip包
    *
    * @param zipFile  zip文件的全路径
-   * @param unzipDir 解压后的文件保存的路径
+   * @param unzipDir 解压后的文件保存的路径, 压缩包中路径在该目录之外的文件会导致解压失败
    */
   @SuppressWarnings("unchecked")
   public static void unzip(File zipFile, File unzipDir) throws Exception {
@@ -77,13 +77,29 @@ public abstract class XzipUtil {
     assertTrue(zipFile.isFile());
     assertTrue(unzipDir.isDirectory() || unzipDir.mkdirs());
     //开始解压
+    String unzipPath = unzipDir.getCanonicalPath() + File.separator;
     ZipFile zip = new ZipFile(zipFile);
+    try {
+      unzipEntries(zip, unzipDir, unzipPath);
+    } finally {
+      XioUtil.closeQuietly(zip);
+    }
+    log.debug("解压缩完成，耗时：{} ms, 目录为：{}",
+        System.currentTimeMillis() - start,
+        unzipDir.getAbsolutePath());
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void unzipEntries(ZipFile zip, File unzipDir, String unzipPath) throws Exception {
     Enumeration<ZipEntry> entries = (Enumeration<ZipEntry>) zip.entries();
     //循环对压缩包里的每一个文件进行解压
     while (entries.hasMoreElements()) {
       ZipEntry entry = entries.nextElement();
       //构建压缩包中一个文件解压后保存的文件全路径
       File file = new File(unzipDir, entry.getName());
+      if (!file.getCanonicalPath().startsWith(unzipPath)) {
+        throw new IOException("压缩包中的文件路径不在解压目录内: " + entry.getName());
+      }
       file = new File(file.getCanonicalPath().replaceAll("\\\\", "/"));
       if (entry.isDirectory()) {
         assertTrue((file.isDirectory() || file.mkdirs()));
@@ -99,9 +115,6 @@ public abstract class XzipUtil {
         }
       }
     }
-    log.debug("解压缩完成，耗时：{} ms, 目录为：{}",
-        System.currentTimeMillis() - start,
-        unzipDir.getAbsolutePath());
   }
 
   /**